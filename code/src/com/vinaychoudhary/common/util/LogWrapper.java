@@ -13,7 +13,13 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import android.annotation.SuppressLint;
 import android.os.Environment;
@@ -47,6 +53,51 @@ public class LogWrapper {
      */
     private static final long MIN_LOG_FILE_SIZE = 1024 * 128;
 
+    /**
+     * 50 ms is default average file write latency above which file logging is degraded.
+     */
+    public static final long DEFAULT_SLOW_WRITE_THRESHOLD_MS = 50;
+
+    /**
+     * 64 KB is max size of logs held in memory while file logging is
+     * {@link FileLogState#MEMORY_ONLY}.
+     */
+    private static final int MAX_MEMORY_BUFFER_SIZE = 1024 * 64;
+
+    /**
+     * Delay after which buffered logs are flushed to file in background while file logging is
+     * {@link FileLogState#MEMORY_ONLY}. Each flush also measures if storage has recovered.
+     */
+    private static final long MEMORY_ONLY_PROBE_INTERVAL_MS = 1000;
+
+    /**
+     * Minimum file writes measured before file logging state is changed again.
+     */
+    private static final int MIN_WRITES_PER_STATE_CHANGE = 4;
+
+    /**
+     * Max unused {@link LogEvent} objects kept per thread for reuse.
+     */
+    private static final int EVENT_POOL_SIZE = 4;
+
+    /**
+     * 2 KB is max capacity of a {@link LogEvent} buffer for it to be kept for reuse, so one large
+     * log does not hold memory for life of the thread.
+     */
+    private static final int MAX_POOLED_EVENT_CAPACITY = 1024 * 2;
+
+    /**
+     * Buckets of method latency histogram. Bucket i holds calls taking less than 2^i micro seconds,
+     * last bucket holds all longer calls.
+     */
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    /**
+     * Max nested method calls tracked per thread while profiling. When full, oldest entry is
+     * dropped as it is most likely an entry whose exit was never logged.
+     */
+    private static final int MAX_TRACE_DEPTH = 128;
+
     /**
      * The Log levels. Based on Android Log Levels.
      */
@@ -67,6 +118,66 @@ public class LogWrapper {
         }
     }
 
+    /**
+     * State of file logging. File logging is degraded when writing to file becomes slow and is
+     * restored once writes are fast again.
+     *
+     * @see LogConfig#setSlowWriteThreshold(long)
+     */
+    public enum FileLogState {
+        /**
+         * All logs are written to file.
+         */
+        FULL,
+        /**
+         * {@link LogLevel#VERBOSE} and {@link LogLevel#DEBUG} logs are not written to file.
+         */
+        SKIP_LOW_PRIORITY,
+        /**
+         * {@link LogLevel#VERBOSE} and {@link LogLevel#DEBUG} logs are not written to file. Other
+         * logs are kept in memory and flushed to file in background every
+         * {@value LogWrapper#MEMORY_ONLY_PROBE_INTERVAL_MS} ms.
+         */
+        MEMORY_ONLY
+    }
+
+    /**
+     * Output format of structured logs.
+     *
+     * @see LogConfig#setStructuredFormat(StructuredFormat)
+     * @see LogEvent
+     */
+    public enum StructuredFormat {
+        /**
+         * Space separated key=value pairs, e.g. <code>msg=fetched userId=42 ms=3.5</code>. Keys
+         * and values are quoted when they contain space, '=', '"' or '\\'.
+         */
+        KEY_VALUE,
+        /**
+         * Single line JSON object, e.g. <code>{"msg":"fetched","userId":42,"ms":3.5}</code>
+         */
+        JSON
+    }
+
+    /**
+     * Listener notified when file logging of a TAG is degraded or restored. Called on the logging
+     * thread or the background flush thread, without holding any lock of {@link LogWrapper}, so
+     * it may log through any TAG.
+     *
+     * @see LogConfig#setFileLogStateListener(FileLogStateListener)
+     */
+    public interface FileLogStateListener {
+
+        /**
+         * @param tag the TAG whose file logging state changed.
+         * @param oldState previous {@link FileLogState}.
+         * @param newState current {@link FileLogState}.
+         * @param avgWriteMs average file write latency in ms that caused the change.
+         */
+        void onFileLogStateChanged(String tag, FileLogState oldState, FileLogState newState,
+                long avgWriteMs);
+    }
+
     /**
      * Class used for configuration of {@link LogWrapper}. It configures the default TAG, log dir
      * and file.
@@ -96,6 +207,11 @@ public class LogWrapper {
         private LogLevel mLogLevel = LogLevel.VERBOSE;
         private LogLevel mFileLogLevel = LogLevel.VERBOSE;
         private boolean mLookInStackForMethodName = false;
+        private volatile long mSlowWriteThresholdMs = DEFAULT_SLOW_WRITE_THRESHOLD_MS;
+        private volatile FileLogStateListener mFileLogStateListener;
+        private volatile StructuredFormat mStructuredFormat = StructuredFormat.KEY_VALUE;
+        private volatile boolean mMethodProfilingEnabled = false;
+        private volatile long mSlowCallThresholdMs = 0;
 
         /**
          * Configures the {@link LogWrapper}. Can only be configured once in an application. No
@@ -186,6 +302,473 @@ public class LogWrapper {
         public void findMethodNameInStack(boolean lookInStack) {
             mLookInStackForMethodName = lookInStack;
         }
+
+        /**
+         * Set the average file write latency above which file logging is degraded. First
+         * {@link LogLevel#VERBOSE} and {@link LogLevel#DEBUG} logs are skipped, then logs are kept
+         * in memory only. File logging is restored once average latency drops below half of
+         * threshold. Default is {@value LogWrapper#DEFAULT_SLOW_WRITE_THRESHOLD_MS} ms.
+         *
+         * @param thresholdMs threshold in ms, 0 or less disables degradation.
+         * @see LogWrapper#getFileLogState()
+         */
+        public void setSlowWriteThreshold(long thresholdMs) {
+            mSlowWriteThresholdMs = thresholdMs;
+        }
+
+        /**
+         * Set listener notified when file logging of any TAG is degraded or restored.
+         *
+         * @param listener the listener, null to remove.
+         */
+        public void setFileLogStateListener(FileLogStateListener listener) {
+            mFileLogStateListener = listener;
+        }
+
+        /**
+         * Set output format of structured logs. Default is {@link StructuredFormat#KEY_VALUE}.
+         *
+         * @param format the {@link StructuredFormat}, null is ignored.
+         * @see LogWrapper#atInfo()
+         */
+        public void setStructuredFormat(StructuredFormat format) {
+            if (format != null) {
+                mStructuredFormat = format;
+            }
+        }
+
+        /**
+         * Enable or disable method profiling. When enabled {@link LogWrapper#logMethodEntry()} and
+         * {@link LogWrapper#logMethodExit()} no longer log "--->"/"<---" lines, instead time taken
+         * by each call is recorded in a per method histogram. Works even if logging is disabled.
+         *
+         * @param enable <i><b>true</b></i> for profiling, <i><b>false</b></i> for logging method
+         *            entry and exit.
+         * @param slowCallThresholdMs calls taking longer than this are written to file, 0 or less
+         *            writes no calls.
+         * @see LogWrapper#dumpMethodStats()
+         */
+        public void setMethodProfiling(boolean enable, long slowCallThresholdMs) {
+            mSlowCallThresholdMs = slowCallThresholdMs;
+            mMethodProfilingEnabled = enable;
+        }
+    }
+
+    /**
+     * A structured log event with key/value pairs. Obtained from {@link LogWrapper#atInfo()} and
+     * similar methods and used as:
+     *
+     * <pre>
+     * mLog.atInfo().kv(&quot;userId&quot;, 42L).kv(&quot;ms&quot;, 3.5).msg(&quot;fetched&quot;).write();
+     * </pre>
+     *
+     * Events are taken from a per thread pool and returned to it by {@link #write()}, so an event
+     * must not be kept or used after {@link #write()} and must not be shared between threads. When
+     * level is disabled a shared no-op event is returned which ignores all calls.
+     *
+     * @author Vinay Choudhary
+     */
+    public static class LogEvent {
+
+        private LogWrapper mLogger;
+        private LogLevel mLevel;
+        private boolean mJson;
+        private String mMsg;
+        private final StringBuilder mFields = new StringBuilder();
+        private final StringBuilder mLine = new StringBuilder();
+
+        private LogEvent() {
+        }
+
+        private void reset(LogWrapper logger, LogLevel level, StructuredFormat format) {
+            mLogger = logger;
+            mLevel = level;
+            mJson = format == StructuredFormat.JSON;
+            mMsg = null;
+            mFields.setLength(0);
+        }
+
+        /**
+         * Set the message of this event.
+         *
+         * @param msg the message
+         * @return this event
+         */
+        public LogEvent msg(String msg) {
+            mMsg = msg;
+            return this;
+        }
+
+        /**
+         * Add a key/value pair. Also used for int, short and byte values, char values are written
+         * as {@link #kv(String, char)}.
+         *
+         * @return this event
+         */
+        public LogEvent kv(String key, long value) {
+            appendKey(key);
+            mFields.append(value);
+            return this;
+        }
+
+        /**
+         * Add a key/value pair.
+         *
+         * @return this event
+         */
+        public LogEvent kv(String key, double value) {
+            appendKey(key);
+            if (mJson && (Double.isNaN(value) || Double.isInfinite(value))) {
+                // not valid JSON numbers
+                mFields.append('"').append(value).append('"');
+            }
+            else {
+                mFields.append(value);
+            }
+            return this;
+        }
+
+        /**
+         * Add a key/value pair.
+         *
+         * @return this event
+         */
+        public LogEvent kv(String key, float value) {
+            appendKey(key);
+            if (mJson && (Float.isNaN(value) || Float.isInfinite(value))) {
+                // not valid JSON numbers
+                mFields.append('"').append(value).append('"');
+            }
+            else {
+                mFields.append(value);
+            }
+            return this;
+        }
+
+        /**
+         * Add a key/value pair.
+         *
+         * @return this event
+         */
+        public LogEvent kv(String key, boolean value) {
+            appendKey(key);
+            mFields.append(value);
+            return this;
+        }
+
+        /**
+         * Add a key/value pair. Value is written as a string of one character.
+         *
+         * @return this event
+         */
+        public LogEvent kv(String key, char value) {
+            return kv(key, String.valueOf(value));
+        }
+
+        /**
+         * Add a key/value pair. Value is quoted when required.
+         *
+         * @return this event
+         */
+        public LogEvent kv(String key, String value) {
+            appendKey(key);
+            appendString(mFields, value);
+            return this;
+        }
+
+        /**
+         * Add a key/value pair. Boxed integers, floating point numbers and booleans are written
+         * as their primitive values, other values are converted using
+         * {@link String#valueOf(Object)}.
+         *
+         * @return this event
+         */
+        public LogEvent kv(String key, Object value) {
+            if (value instanceof Integer || value instanceof Long || value instanceof Short
+                    || value instanceof Byte) {
+                return kv(key, ((Number) value).longValue());
+            }
+            if (value instanceof Double) {
+                return kv(key, ((Double) value).doubleValue());
+            }
+            if (value instanceof Float) {
+                return kv(key, ((Float) value).floatValue());
+            }
+            if (value instanceof Boolean) {
+                return kv(key, ((Boolean) value).booleanValue());
+            }
+            return kv(key, value == null ? null : String.valueOf(value));
+        }
+
+        /**
+         * Logs this event and writes it in file associated with the {@link LogWrapper}. Event is
+         * returned to pool and must not be used afterwards, further calls to write are ignored.
+         */
+        public void write() {
+            if (mLogger == null) {
+                // already written and released
+                return;
+            }
+
+            mLine.setLength(0);
+            if (mJson) {
+                mLine.append('{');
+                if (mMsg != null) {
+                    mLine.append("\"msg\":");
+                    appendString(mLine, mMsg);
+                }
+                if (mFields.length() > 0) {
+                    // fields are stored with leading ','
+                    mLine.append(mFields, mMsg != null ? 0 : 1, mFields.length());
+                }
+                mLine.append('}');
+            }
+            else {
+                if (mMsg != null) {
+                    mLine.append("msg=");
+                    appendString(mLine, mMsg);
+                }
+                if (mFields.length() > 0) {
+                    // fields are stored with leading ' '
+                    mLine.append(mFields, mMsg != null ? 0 : 1, mFields.length());
+                }
+            }
+
+            LogWrapper logger = mLogger;
+            LogLevel level = mLevel;
+            String line = mLine.toString();
+            mLogger = null;
+            mMsg = null;
+            releaseEvent(this);
+
+            logger.writeEvent(line, level);
+        }
+
+        private void appendKey(String key) {
+            if (mJson) {
+                mFields.append(',');
+                appendString(mFields, key);
+                mFields.append(':');
+            }
+            else {
+                mFields.append(' ');
+                appendString(mFields, key);
+                mFields.append('=');
+            }
+        }
+
+        private void appendString(StringBuilder sb, String value) {
+            if (value == null) {
+                sb.append("null");
+                return;
+            }
+            if (!mJson && !needsQuotes(value)) {
+                sb.append(value);
+                return;
+            }
+
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        }
+                        else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+
+        private static boolean needsQuotes(String value) {
+            if (value.length() == 0) {
+                return true;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c <= ' ' || c == '=' || c == '"' || c == '\\') {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Shared event returned when level is disabled, ignores all calls.
+     */
+    private static final LogEvent NO_OP_EVENT = new LogEvent() {
+
+        @Override
+        public LogEvent msg(String msg) {
+            return this;
+        }
+
+        @Override
+        public LogEvent kv(String key, long value) {
+            return this;
+        }
+
+        @Override
+        public LogEvent kv(String key, double value) {
+            return this;
+        }
+
+        @Override
+        public LogEvent kv(String key, float value) {
+            return this;
+        }
+
+        @Override
+        public LogEvent kv(String key, boolean value) {
+            return this;
+        }
+
+        @Override
+        public LogEvent kv(String key, char value) {
+            return this;
+        }
+
+        @Override
+        public LogEvent kv(String key, String value) {
+            return this;
+        }
+
+        @Override
+        public LogEvent kv(String key, Object value) {
+            return this;
+        }
+
+        @Override
+        public void write() {
+        }
+    };
+
+    /**
+     * Latency histogram of a method.
+     */
+    private static class MethodStats {
+        private long mCount;
+        private long mMaxNanos;
+        private final long[] mBuckets = new long[HISTOGRAM_BUCKETS];
+
+        private void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets[bucket < HISTOGRAM_BUCKETS ? bucket : HISTOGRAM_BUCKETS - 1]++;
+            mCount++;
+            if (nanos > mMaxNanos) {
+                mMaxNanos = nanos;
+            }
+        }
+
+        /**
+         * @return upper bound of bucket holding given percentile, in ms.
+         */
+        private double percentileMs(int percentile) {
+            long rank = (mCount * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS - 1; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(1L << i, mMaxNanos / 1000) / 1000.0;
+                }
+            }
+            return mMaxNanos / 1000000.0;
+        }
+    }
+
+    /**
+     * Per thread stack of method entries being profiled.
+     */
+    private static class TraceStack {
+        private final String[] mMethods = new String[MAX_TRACE_DEPTH];
+        private final long[] mStartNanos = new long[MAX_TRACE_DEPTH];
+        private int mDepth;
+    }
+
+    /**
+     * Writes logs buffered while file logging is {@link FileLogState#MEMORY_ONLY}, so slow writes
+     * do not block logging threads.
+     */
+    private static final ScheduledExecutorService sFlushExecutor = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LogWrapper-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * A change of {@link FileLogState}, notified after lock on {@link LogWrapper} is released.
+     */
+    private static class FileLogStateChange {
+        private final FileLogState mOldState;
+        private final FileLogState mNewState;
+        private final long mAvgWriteMs;
+
+        private FileLogStateChange(FileLogState oldState, FileLogState newState, long avgWriteMs) {
+            mOldState = oldState;
+            mNewState = newState;
+            mAvgWriteMs = avgWriteMs;
+        }
+    }
+
+    private static final ThreadLocal<TraceStack> sTraceStack = new ThreadLocal<TraceStack>() {
+
+        @Override
+        protected TraceStack initialValue() {
+            return new TraceStack();
+        }
+    };
+
+    private static final ThreadLocal<ArrayList<LogEvent>> sEventPool =
+            new ThreadLocal<ArrayList<LogEvent>>() {
+
+                @Override
+                protected ArrayList<LogEvent> initialValue() {
+                    return new ArrayList<LogEvent>(EVENT_POOL_SIZE);
+                }
+            };
+
+    private static LogEvent obtainEvent(LogWrapper logger, LogLevel level) {
+        ArrayList<LogEvent> pool = sEventPool.get();
+        LogEvent event = pool.isEmpty() ? new LogEvent() : pool.remove(pool.size() - 1);
+        event.reset(logger, level, sConfig.mStructuredFormat);
+        return event;
+    }
+
+    private static void releaseEvent(LogEvent event) {
+        if (event.mFields.capacity() > MAX_POOLED_EVENT_CAPACITY
+                || event.mLine.capacity() > MAX_POOLED_EVENT_CAPACITY) {
+            // let large buffers be garbage collected
+            return;
+        }
+        ArrayList<LogEvent> pool = sEventPool.get();
+        if (pool.size() < EVENT_POOL_SIZE) {
+            pool.add(event);
+        }
     }
 
     private String mTag;
@@ -199,6 +782,14 @@ public class LogWrapper {
     private boolean mEnableFileLogs = true;
     private LogLevel mLogLevel = LogLevel.VERBOSE;
     private LogLevel mFileLogLevel = LogLevel.VERBOSE;
+    private volatile FileLogState mFileLogState = FileLogState.FULL;
+    private long mAvgWriteNanos;
+    private int mWritesSinceStateChange;
+    private final LinkedList<String> mMemoryLogs = new LinkedList<String>();
+    private int mMemoryLogsLength;
+    private boolean mMemoryFlushPending;
+    private final Object mFileLock = new Object();
+    private final HashMap<String, MethodStats> mMethodStats = new HashMap<String, MethodStats>();
 
     private static volatile HashMap<String, LogWrapper> sLoggers = new HashMap<String, LogWrapper>();
     private static volatile HashMap<String, Integer> sLogRefs = new HashMap<String, Integer>();
@@ -424,13 +1015,102 @@ public class LogWrapper {
     }
 
     /**
-     * Logs the method entry as "---> methodName()". It has Debug level priority.
+     * Start a structured error log event.
+     *
+     * @return the {@link LogEvent}, a no-op event if error logs are disabled.
+     */
+    public LogEvent atError() {
+        return atLevel(LogLevel.ERROR);
+    }
+
+    /**
+     * Start a structured warning log event.
+     *
+     * @return the {@link LogEvent}, a no-op event if warning logs are disabled.
+     */
+    public LogEvent atWarning() {
+        return atLevel(LogLevel.WARNING);
+    }
+
+    /**
+     * Start a structured info log event, e.g.
+     * <code>atInfo().kv("userId", 42L).msg("fetched").write()</code>
+     *
+     * @return the {@link LogEvent}, a no-op event if info logs are disabled.
+     * @see LogConfig#setStructuredFormat(StructuredFormat)
+     */
+    public LogEvent atInfo() {
+        return atLevel(LogLevel.INFO);
+    }
+
+    /**
+     * Start a structured debug log event.
+     *
+     * @return the {@link LogEvent}, a no-op event if debug logs are disabled.
+     */
+    public LogEvent atDebug() {
+        return atLevel(LogLevel.DEBUG);
+    }
+
+    /**
+     * Start a structured verbose log event.
+     *
+     * @return the {@link LogEvent}, a no-op event if verbose logs are disabled.
+     */
+    public LogEvent atVerbose() {
+        return atLevel(LogLevel.VERBOSE);
+    }
+
+    private LogEvent atLevel(LogLevel level) {
+        if (!canLogAtLevel(level) && !canWriteFileAtLevel(level)) {
+            return NO_OP_EVENT;
+        }
+        return obtainEvent(this, level);
+    }
+
+    private void writeEvent(String msg, LogLevel level) {
+        switch (level) {
+            case ERROR:
+                logError(msg);
+                break;
+            case WARNING:
+                logWarning(msg);
+                break;
+            case INFO:
+                logInfo(msg);
+                break;
+            case DEBUG:
+                logDebug(msg);
+                break;
+            default:
+                logVerbose(msg);
+        }
+        writeToFile(msg, level);
+    }
+
+    /**
+     * Get current state of file logging for this TAG.
+     *
+     * @return the {@link FileLogState}
+     * @see LogConfig#setSlowWriteThreshold(long)
+     */
+    public FileLogState getFileLogState() {
+        return mFileLogState;
+    }
+
+    /**
+     * Logs the method entry as "---> methodName()". It has Debug level priority. When profiling,
+     * methodName identifies the method's histogram, so it must be unique within this TAG, e.g.
+     * "ClassName.methodName".
      *
      * @param methodName the methodName
      * @see #logMethodEntry()
      */
     public void logMethodEntry(String methodName) {
-        if (mEnableLogs && sConfig.mLoggingEnabled) {
+        if (sConfig.mMethodProfilingEnabled) {
+            onMethodEntry(methodName);
+        }
+        else if (mEnableLogs && sConfig.mLoggingEnabled) {
             logDebug("---> " + methodName + "()");
         }
     }
@@ -441,7 +1121,8 @@ public class LogWrapper {
      */
     public void logMethodEntry() {
         String methodName = null;
-        if (mEnableLogs && sConfig.mLoggingEnabled) {
+        StackTraceElement caller = null;
+        if (sConfig.mMethodProfilingEnabled || (mEnableLogs && sConfig.mLoggingEnabled)) {
             if (sConfig.mLookInStackForMethodName) {
                 int i = 0;
                 for (StackTraceElement s : Thread.currentThread().getStackTrace()) {
@@ -450,23 +1131,34 @@ public class LogWrapper {
                         break;
                     }
                 }
-                methodName = Thread.currentThread().getStackTrace()[i].getMethodName();
+                caller = Thread.currentThread().getStackTrace()[i];
             } else {
-                methodName = Thread.currentThread().getStackTrace()[LogConfig.CALLER_METHOD_IDX_IN_STACK]
-                        .getMethodName();
+                caller = Thread.currentThread().getStackTrace()[LogConfig.CALLER_METHOD_IDX_IN_STACK];
+            }
+            methodName = caller.getMethodName();
+            if (sConfig.mMethodProfilingEnabled) {
+                // class name keeps same named methods of different classes apart
+                onMethodEntry(caller.getClassName() + "." + methodName);
+            }
+            else {
+                logDebug("---> " + methodName + "()");
             }
-            logDebug("---> " + methodName + "()");
         }
     }
 
     /**
-     * Logs the method exit as "<--- methodName()". It has Debug level priority.
+     * Logs the method exit as "<--- methodName()". It has Debug level priority. When profiling,
+     * methodName must match the one passed to {@link #logMethodEntry(String)}.
      *
      * @param methodName the methodName
      * @see #logMethodExit()
      */
     public void logMethodExit(String methodName) {
-        if (mEnableLogs && sConfig.mLoggingEnabled) {
+        long end = System.nanoTime();
+        if (sConfig.mMethodProfilingEnabled) {
+            onMethodExit(methodName, end);
+        }
+        else if (mEnableLogs && sConfig.mLoggingEnabled) {
             logDebug("<--- " + methodName + "()");
         }
     }
@@ -476,8 +1168,11 @@ public class LogWrapper {
      * {@link #logMethodExit(String)}. It has Debug level priority.
      */
     public void logMethodExit() {
+        // taken before looking up method name so stack trace is not part of profiled time
+        long end = System.nanoTime();
         String methodName = null;
-        if (mEnableLogs && sConfig.mLoggingEnabled) {
+        StackTraceElement caller = null;
+        if (sConfig.mMethodProfilingEnabled || (mEnableLogs && sConfig.mLoggingEnabled)) {
             if (sConfig.mLookInStackForMethodName) {
                 int i = 0;
                 for (StackTraceElement s : Thread.currentThread().getStackTrace()) {
@@ -486,12 +1181,111 @@ public class LogWrapper {
                         break;
                     }
                 }
-                methodName = Thread.currentThread().getStackTrace()[i].getMethodName();
+                caller = Thread.currentThread().getStackTrace()[i];
             } else {
-                methodName = Thread.currentThread().getStackTrace()[LogConfig.CALLER_METHOD_IDX_IN_STACK]
-                        .getMethodName();
+                caller = Thread.currentThread().getStackTrace()[LogConfig.CALLER_METHOD_IDX_IN_STACK];
             }
-            logDebug("<--- " + methodName + "()");
+            methodName = caller.getMethodName();
+            if (sConfig.mMethodProfilingEnabled) {
+                onMethodExit(caller.getClassName() + "." + methodName, end);
+            }
+            else {
+                logDebug("<--- " + methodName + "()");
+            }
+        }
+    }
+
+    private void onMethodEntry(String methodName) {
+        if (methodName == null) {
+            return;
+        }
+        TraceStack stack = sTraceStack.get();
+        if (stack.mDepth == MAX_TRACE_DEPTH) {
+            // drop oldest entry, its exit was most likely never logged
+            System.arraycopy(stack.mMethods, 1, stack.mMethods, 0, MAX_TRACE_DEPTH - 1);
+            System.arraycopy(stack.mStartNanos, 1, stack.mStartNanos, 0, MAX_TRACE_DEPTH - 1);
+            stack.mDepth--;
+        }
+        stack.mMethods[stack.mDepth] = methodName;
+        stack.mStartNanos[stack.mDepth] = System.nanoTime();
+        stack.mDepth++;
+    }
+
+    private void onMethodExit(String methodName, long end) {
+        if (methodName == null) {
+            return;
+        }
+        TraceStack stack = sTraceStack.get();
+
+        // skip entries whose exit was never logged, e.g. due to an exception
+        int i = stack.mDepth - 1;
+        while (i >= 0 && !methodName.equals(stack.mMethods[i])) {
+            i--;
+        }
+        if (i < 0) {
+            // entry was logged before profiling was enabled
+            return;
+        }
+        long elapsed = end - stack.mStartNanos[i];
+        for (int j = i; j < stack.mDepth; j++) {
+            stack.mMethods[j] = null;
+        }
+        stack.mDepth = i;
+
+        synchronized (mMethodStats) {
+            MethodStats stats = mMethodStats.get(methodName);
+            if (stats == null) {
+                stats = new MethodStats();
+                mMethodStats.put(methodName, stats);
+            }
+            stats.record(elapsed);
+        }
+
+        long thresholdMs = sConfig.mSlowCallThresholdMs;
+        if (thresholdMs > 0 && elapsed > thresholdMs * 1000000L) {
+            atInfo().kv("method", methodName).kv("ms", elapsed / 1000000.0).msg("slow call")
+                    .write();
+        }
+    }
+
+    /**
+     * Logs and writes in file the count, p50, p99 and max time of each method profiled by this
+     * LogWrapper. Percentiles are accurate to next power of 2 micro seconds.
+     *
+     * @see LogConfig#setMethodProfiling(boolean, long)
+     */
+    public void dumpMethodStats() {
+        ArrayList<String> methods;
+        ArrayList<MethodStats> snapshot;
+        synchronized (mMethodStats) {
+            methods = new ArrayList<String>(mMethodStats.keySet());
+            snapshot = new ArrayList<MethodStats>(methods.size());
+            for (String method : methods) {
+                MethodStats stats = mMethodStats.get(method);
+                MethodStats copy = new MethodStats();
+                copy.mCount = stats.mCount;
+                copy.mMaxNanos = stats.mMaxNanos;
+                System.arraycopy(stats.mBuckets, 0, copy.mBuckets, 0, HISTOGRAM_BUCKETS);
+                snapshot.add(copy);
+            }
+        }
+
+        for (int i = 0; i < methods.size(); i++) {
+            MethodStats stats = snapshot.get(i);
+            atInfo().kv("method", methods.get(i)).kv("count", stats.mCount)
+                    .kv("p50Ms", stats.percentileMs(50)).kv("p99Ms", stats.percentileMs(99))
+                    .kv("maxMs", stats.mMaxNanos / 1000000.0).msg("method stats").write();
+        }
+    }
+
+    /**
+     * Clears method profiling data of this LogWrapper.
+     *
+     * @see #dumpMethodStats()
+     */
+    public void resetMethodStats() {
+        synchronized (mMethodStats) {
+            mMethodStats.clear();
         }
     }
 
@@ -591,9 +1385,7 @@ public class LogWrapper {
      */
     public void writeInfo(String msg) {
         logInfo(msg);
-        synchronized (this) {
-            writeToFile(msg, LogLevel.INFO);
-        }
+        writeToFile(msg, LogLevel.INFO);
     }
 
     /**
@@ -603,9 +1395,7 @@ public class LogWrapper {
      */
     public void writeWarning(String msg) {
         logWarning(msg);
-        synchronized (this) {
-            writeToFile(msg, LogLevel.WARNING);
-        }
+        writeToFile(msg, LogLevel.WARNING);
     }
 
     /**
@@ -615,9 +1405,7 @@ public class LogWrapper {
      */
     public void writeDebug(String msg) {
         logDebug(msg);
-        synchronized (this) {
-            writeToFile(msg, LogLevel.DEBUG);
-        }
+        writeToFile(msg, LogLevel.DEBUG);
     }
 
     /**
@@ -627,9 +1415,7 @@ public class LogWrapper {
      */
     public void writeError(String msg) {
         logError(msg);
-        synchronized (this) {
-            writeToFile(msg, LogLevel.ERROR);
-        }
+        writeToFile(msg, LogLevel.ERROR);
     }
 
     /**
@@ -639,9 +1425,7 @@ public class LogWrapper {
      */
     public void writeVerbose(String msg) {
         logVerbose(msg);
-        synchronized (this) {
-            writeToFile(msg, LogLevel.VERBOSE);
-        }
+        writeToFile(msg, LogLevel.VERBOSE);
     }
 
     /**
@@ -652,9 +1436,7 @@ public class LogWrapper {
      */
     public void writeException(Throwable e) {
         logExceptionError(e);
-        synchronized (mTag) {
-            writeToFile(e.toString(), LogLevel.ERROR);
-        }
+        writeToFile(e.toString(), LogLevel.ERROR);
     }
 
     /**
@@ -665,36 +1447,211 @@ public class LogWrapper {
      */
     public void writeStackTrace(Throwable e) {
         logStackTrace(e);
-        synchronized (mTag) {
-            writeToFile(getStackTace(e), LogLevel.ERROR);
-        }
+        writeToFile(getStackTace(e), LogLevel.ERROR);
     }
 
-    private void writeToFile(String msg, LogLevel level) {
+    private boolean canWriteFileAtLevel(LogLevel level) {
         if (!mCanWriteFile || !mEnableFileLogs || !sConfig.mFileLoggingEnabled) {
-            return;
+            return false;
         }
 
         if (sConfig.mFileLogLevel.ordinal() >= level.ordinal()
                 && mFileLogLevel.ordinal() >= level.ordinal()) {
+            return false;
+        }
+
+        if (mFileLogState != FileLogState.FULL && level.ordinal() <= LogLevel.DEBUG.ordinal()) {
+            return false;
+        }
+        return true;
+    }
+
+    private void writeToFile(String msg, LogLevel level) {
+        if (!canWriteFileAtLevel(level)) {
             return;
         }
 
+        Timestamp t = new Timestamp(System.currentTimeMillis());
+        String log = String.format("%s %s/%s(%d): %s\n\n", t.toString(), level.getFileTag(),
+                mTag, Process.myTid(), msg);
+
+        FileLogStateChange change;
+        synchronized (this) {
+            if (mFileLogState == FileLogState.MEMORY_ONLY || mMemoryFlushPending) {
+                // while a flush is pending logs are buffered too, so they stay in order
+                bufferLog(log);
+                return;
+            }
+            change = updateFileLogState(appendToFile(log));
+        }
+        notifyFileLogStateChange(change);
+    }
+
+    /**
+     * Keeps a log in memory and schedules a flush. Must hold lock on this.
+     */
+    private void bufferLog(String log) {
+        mMemoryLogs.addLast(log);
+        mMemoryLogsLength += log.length();
+        while (mMemoryLogsLength > MAX_MEMORY_BUFFER_SIZE && mMemoryLogs.size() > 1) {
+            // drop oldest logs
+            mMemoryLogsLength -= mMemoryLogs.removeFirst().length();
+        }
+
+        if (!mMemoryFlushPending) {
+            scheduleMemoryFlush();
+        }
+    }
+
+    /**
+     * Schedules writing of buffered logs in background, after
+     * {@value #MEMORY_ONLY_PROBE_INTERVAL_MS} ms if file logging is
+     * {@link FileLogState#MEMORY_ONLY} or else immediately. Must hold lock on this.
+     */
+    private void scheduleMemoryFlush() {
+        mMemoryFlushPending = true;
+        long delay = mFileLogState == FileLogState.MEMORY_ONLY ? MEMORY_ONLY_PROBE_INTERVAL_MS : 0;
+        sFlushExecutor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                flushMemoryLogs();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes buffered logs. First log is written alone and time taken updates file logging state,
+     * so the probe is comparable to writing a single log. Runs on flush thread.
+     */
+    private void flushMemoryLogs() {
+        ArrayList<String> logs;
+        synchronized (this) {
+            logs = new ArrayList<String>(mMemoryLogs);
+            mMemoryLogs.clear();
+            mMemoryLogsLength = 0;
+        }
+
+        long nanos = 0;
+        if (!logs.isEmpty()) {
+            nanos = appendToFile(logs.get(0));
+        }
+        if (logs.size() > 1) {
+            StringBuilder rest = new StringBuilder();
+            for (int i = 1; i < logs.size(); i++) {
+                rest.append(logs.get(i));
+            }
+            appendToFile(rest.toString());
+        }
+
+        FileLogStateChange change = null;
+        synchronized (this) {
+            if (!logs.isEmpty()) {
+                change = updateFileLogState(nanos);
+            }
+            if (mMemoryLogs.isEmpty()) {
+                mMemoryFlushPending = false;
+            }
+            else {
+                // logs buffered during this flush are written before logging to file directly
+                scheduleMemoryFlush();
+            }
+        }
+        notifyFileLogStateChange(change);
+    }
+
+    /**
+     * Appends text to log file. All appends are serialized, so logs are never interleaved.
+     *
+     * @return time taken in nano seconds.
+     */
+    private long appendToFile(String text) {
         FileWriter fOut = null;
         BufferedWriter myOutWriter = null;
-        try {
-            Timestamp t = new Timestamp(System.currentTimeMillis());
-            String log = String.format("%s %s/%s(%d): %s\n", t.toString(), level.getFileTag(),
-                    mTag, Process.myTid(), msg);
-            fOut = new FileWriter(mLogFile, true);
-            myOutWriter = new BufferedWriter(fOut);
-            myOutWriter.write(log);
-            myOutWriter.newLine();
-            myOutWriter.close();
-        } catch (FileNotFoundException e) {
-            logExceptionError(e);
-        } catch (IOException e) {
-            logExceptionError(e);
+        synchronized (mFileLock) {
+            long start = System.nanoTime();
+            try {
+                fOut = new FileWriter(mLogFile, true);
+                myOutWriter = new BufferedWriter(fOut);
+                myOutWriter.write(text);
+                myOutWriter.close();
+            } catch (FileNotFoundException e) {
+                logExceptionError(e);
+            } catch (IOException e) {
+                logExceptionError(e);
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Must hold lock on this.
+     *
+     * @return the state change to notify, null if state did not change.
+     */
+    private FileLogStateChange updateFileLogState(long writeNanos) {
+        long thresholdMs = sConfig.mSlowWriteThresholdMs;
+        if (thresholdMs <= 0) {
+            if (mFileLogState != FileLogState.FULL) {
+                return changeFileLogState(FileLogState.FULL);
+            }
+            return null;
+        }
+
+        // moving average, each new write weighs 1/4, restarted on every state change
+        mAvgWriteNanos = mAvgWriteNanos == 0 ? writeNanos : mAvgWriteNanos
+                + (writeNanos - mAvgWriteNanos) / 4;
+        if (++mWritesSinceStateChange < MIN_WRITES_PER_STATE_CHANGE) {
+            return null;
+        }
+
+        long thresholdNanos = thresholdMs * 1000000L;
+        if (mAvgWriteNanos > thresholdNanos) {
+            if (mFileLogState == FileLogState.FULL) {
+                return changeFileLogState(FileLogState.SKIP_LOW_PRIORITY);
+            }
+            else if (mFileLogState == FileLogState.SKIP_LOW_PRIORITY) {
+                return changeFileLogState(FileLogState.MEMORY_ONLY);
+            }
+        }
+        else if (mAvgWriteNanos < thresholdNanos / 2) {
+            if (mFileLogState == FileLogState.MEMORY_ONLY) {
+                return changeFileLogState(FileLogState.SKIP_LOW_PRIORITY);
+            }
+            else if (mFileLogState == FileLogState.SKIP_LOW_PRIORITY) {
+                return changeFileLogState(FileLogState.FULL);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Must hold lock on this.
+     */
+    private FileLogStateChange changeFileLogState(FileLogState newState) {
+        FileLogStateChange change = new FileLogStateChange(mFileLogState, newState,
+                mAvgWriteNanos / 1000000L);
+        mFileLogState = newState;
+        mAvgWriteNanos = 0;
+        mWritesSinceStateChange = 0;
+        return change;
+    }
+
+    /**
+     * Logs the state change and notifies listener. Must not hold lock on this, so listener can log
+     * freely.
+     */
+    private void notifyFileLogStateChange(FileLogStateChange change) {
+        if (change == null) {
+            return;
+        }
+
+        logWarning("File logging changed from " + change.mOldState + " to " + change.mNewState
+                + ", average write: " + change.mAvgWriteMs + " ms");
+        FileLogStateListener listener = sConfig.mFileLogStateListener;
+        if (listener != null) {
+            listener.onFileLogStateChanged(mTag, change.mOldState, change.mNewState,
+                    change.mAvgWriteMs);
         }
     }
 }